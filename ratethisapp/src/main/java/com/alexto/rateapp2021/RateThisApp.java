@@ -24,11 +24,13 @@ import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.KeyEvent;
 
 import androidx.annotation.StringRes;
+import androidx.annotation.VisibleForTesting;
 
 import com.google.android.gms.tasks.Task;
 import com.google.android.play.core.review.ReviewInfo;
@@ -55,16 +57,20 @@ public class RateThisApp {
     private static final String KEY_OPT_OUT = "rta_opt_out";
     private static final String KEY_ASK_LATER_DATE = "rta_ask_later_date";
 
+    // Guarded by the RateThisApp class lock, together with the updates of their prefs keys
     private static Date mInstallDate = new Date();
     private static int mLaunchTimes = 0;
     private static boolean mOptOut = false;
     private static Date mAskLaterDate = new Date();
 
-    private static Config sConfig = new Config();
-    private static Callback sCallback = null;
-    // Weak ref to avoid leaking the context
+    private static volatile Config sConfig = new Config();
+    private static volatile Callback sCallback = null;
+    private static volatile Clock sClock = Clock.SYSTEM;
+    private static volatile ReviewManagerProvider sReviewManagerProvider = ReviewManagerProvider.PLAY;
+    // Weak ref to avoid leaking the context.
+    // Only accessed on the main thread, where the dialog is shown and its listeners are called.
     private static WeakReference<AlertDialog> sDialogRef = null;
-    private static ReviewManager reviewManager;
+    private static volatile ReviewManager reviewManager;
     /**
      * If true, print LogCat
      */
@@ -86,6 +92,24 @@ public class RateThisApp {
         sCallback = callback;
     }
 
+    /**
+     * Set the time source used for install / ask-later dates and the day criteria.
+     * Tests use this to move through simulated days without touching the wall clock.
+     */
+    @VisibleForTesting
+    static void setClock(Clock clock) {
+        sClock = clock != null ? clock : Clock.SYSTEM;
+    }
+
+    /**
+     * Set the source of the Play Core review manager.
+     * Tests use this to drive the review flow and its fallback dialog without Google Play.
+     */
+    @VisibleForTesting
+    static void setReviewManagerProvider(ReviewManagerProvider provider) {
+        sReviewManagerProvider = provider != null ? provider : ReviewManagerProvider.PLAY;
+    }
+
     /**
      * Call this API when the launcher activity is launched.<br>
      * It is better to call this API in onCreate() of the launcher activity.
@@ -93,23 +117,22 @@ public class RateThisApp {
      */
     public static void onCreate(Context context) {
         SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        Editor editor = pref.edit();
-        // If it is the first launch, save the date in shared preference.
-        if (pref.getLong(KEY_INSTALL_DATE, 0) == 0L) {
-            storeInstallDate(context, editor);
+        synchronized (RateThisApp.class) {
+            Editor editor = pref.edit();
+            // If it is the first launch, save the date in shared preference.
+            if (pref.getLong(KEY_INSTALL_DATE, 0) == 0L) {
+                storeInstallDate(context, editor);
+            }
+            // Increment launch times
+            int launchTimes = pref.getInt(KEY_LAUNCH_TIMES, 0);
+            launchTimes++;
+            editor.putInt(KEY_LAUNCH_TIMES, launchTimes);
+            log("Launch times; " + launchTimes);
+
+            editor.apply();
+            loadStatus(pref);
         }
-        // Increment launch times
-        int launchTimes = pref.getInt(KEY_LAUNCH_TIMES, 0);
-        launchTimes++;
-        editor.putInt(KEY_LAUNCH_TIMES, launchTimes);
-        log("Launch times; " + launchTimes);
-
-        editor.apply();
-        reviewManager = ReviewManagerFactory.create(context);
-        mInstallDate = new Date(pref.getLong(KEY_INSTALL_DATE, 0));
-        mLaunchTimes = pref.getInt(KEY_LAUNCH_TIMES, 0);
-        mOptOut = pref.getBoolean(KEY_OPT_OUT, false);
-        mAskLaterDate = new Date(pref.getLong(KEY_ASK_LATER_DATE, 0));
+        reviewManager = sReviewManagerProvider.create(context);
 
         printStatus(context);
     }
@@ -157,7 +180,7 @@ public class RateThisApp {
      * Developers may call this method directly if they want to show their own view instead of
      * dialog provided by this library.
      */
-    public static boolean shouldShowRateDialog() {
+    public static synchronized boolean shouldShowRateDialog() {
         if (mOptOut) {
             return false;
         } else {
@@ -165,8 +188,9 @@ public class RateThisApp {
                 return true;
             }
             long threshold = TimeUnit.DAYS.toMillis(sConfig.mCriteriaInstallDays);   // msec
-            if (new Date().getTime() - mInstallDate.getTime() >= threshold &&
-                    new Date().getTime() - mAskLaterDate.getTime() >= threshold) {
+            long now = sClock.currentTimeMillis();
+            if (now - mInstallDate.getTime() >= threshold &&
+                    now - mAskLaterDate.getTime() >= threshold) {
                 return true;
             }
             return false;
@@ -174,7 +198,8 @@ public class RateThisApp {
     }
 
     /**
-     * Show the rate dialog
+     * Show the rate dialog.
+     * Must be called on the main thread.
      */
     public static void showRateDialog(final Context context) {
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
@@ -182,7 +207,8 @@ public class RateThisApp {
     }
 
     /**
-     * Show the rate dialog
+     * Show the rate dialog.
+     * Must be called on the main thread.
      */
     public static void showRateDialog(final Context context, int themeId) {
         AlertDialog.Builder builder = new AlertDialog.Builder(context, themeId);
@@ -204,14 +230,15 @@ public class RateThisApp {
     }
 
     public static void showGoogleReview(final Context context, final int themeId, final boolean isThemeNeed) {
-        reviewManager = ReviewManagerFactory.create(context);
+        final ReviewManager manager = sReviewManagerProvider.create(context);
+        reviewManager = manager;
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP){
-            Task<ReviewInfo> request = reviewManager.requestReviewFlow();
+            Task<ReviewInfo> request = manager.requestReviewFlow();
             request.addOnCompleteListener(task -> {
                 if (task.isSuccessful()) {
                     // We can get the ReviewInfo object
                     ReviewInfo reviewInfo = task.getResult();
-                    Task<Void> flow = reviewManager.launchReviewFlow((Activity) context, reviewInfo);
+                    Task<Void> flow = manager.launchReviewFlow((Activity) context, reviewInfo);
                     flow.addOnCompleteListener(task1 -> {
 
                     });
@@ -253,6 +280,9 @@ public class RateThisApp {
     }
 
     private static void showRateDialog(final Context context, AlertDialog.Builder builder) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("The rate dialog must be shown on the main thread");
+        }
         if (sDialogRef != null && sDialogRef.get() != null) {
             // Dialog is already present
             return;
@@ -304,8 +334,7 @@ public class RateThisApp {
             if (sCallback != null) {
                 sCallback.onCancelClicked();
             }
-            clearSharedPreferences(context);
-            storeAskLaterDate(context);
+            askLater(context);
         });
         builder.setNegativeButton(thanksButtonID, (dialog, which) -> {
             if (sCallback != null) {
@@ -317,13 +346,23 @@ public class RateThisApp {
             if (sCallback != null) {
                 sCallback.onCancelClicked();
             }
-            clearSharedPreferences(context);
-            storeAskLaterDate(context);
+            askLater(context);
         });
         builder.setOnDismissListener(dialog -> sDialogRef.clear());
         sDialogRef = new WeakReference<>(builder.show());
     }
 
+    /**
+     * Reset the launch count and install date and remember when the user asked to be asked later.<br>
+     * This API is called when the "Later" is pressed or canceled.
+     */
+    @VisibleForTesting
+    static synchronized void askLater(Context context) {
+        clearSharedPreferences(context);
+        storeAskLaterDate(context);
+        loadStatus(context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE));
+    }
+
     /**
      * Clear data in shared preferences.<br>
      * This API is called when the "Later" is pressed or canceled.
@@ -341,7 +380,8 @@ public class RateThisApp {
      * If it is true, the rate dialog will never shown unless app data is cleared.
      * This method is called when Yes or No is pressed.
      */
-    private static void setOptOut(final Context context, boolean optOut) {
+    @VisibleForTesting
+    static synchronized void setOptOut(final Context context, boolean optOut) {
         SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
         Editor editor = pref.edit();
         editor.putBoolean(KEY_OPT_OUT, optOut);
@@ -354,7 +394,7 @@ public class RateThisApp {
      * Install date is retrieved from package manager if possible.
      */
     private static void storeInstallDate(final Context context, SharedPreferences.Editor editor) {
-        Date installDate = new Date();
+        Date installDate = new Date(sClock.currentTimeMillis());
         PackageManager packMan = context.getPackageManager();
         try {
             PackageInfo pkgInfo = packMan.getPackageInfo(context.getPackageName(), 0);
@@ -372,10 +412,20 @@ public class RateThisApp {
     private static void storeAskLaterDate(final Context context) {
         SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
         Editor editor = pref.edit();
-        editor.putLong(KEY_ASK_LATER_DATE, System.currentTimeMillis());
+        editor.putLong(KEY_ASK_LATER_DATE, sClock.currentTimeMillis());
         editor.apply();
     }
 
+    /**
+     * Load the values used by shouldShowRateDialog() from SharedPreferences
+     */
+    private static void loadStatus(SharedPreferences pref) {
+        mInstallDate = new Date(pref.getLong(KEY_INSTALL_DATE, 0));
+        mLaunchTimes = pref.getInt(KEY_LAUNCH_TIMES, 0);
+        mOptOut = pref.getBoolean(KEY_OPT_OUT, false);
+        mAskLaterDate = new Date(pref.getLong(KEY_ASK_LATER_DATE, 0));
+    }
+
     /**
      * Print values in SharedPreferences (used for debug)
      */
@@ -480,6 +530,24 @@ public class RateThisApp {
         }
     }
 
+    /**
+     * Source of the current time in milliseconds
+     */
+    interface Clock {
+        Clock SYSTEM = System::currentTimeMillis;
+
+        long currentTimeMillis();
+    }
+
+    /**
+     * Source of the Play Core review manager
+     */
+    interface ReviewManagerProvider {
+        ReviewManagerProvider PLAY = ReviewManagerFactory::create;
+
+        ReviewManager create(Context context);
+    }
+
     /**
      * Callback of dialog click event
      */
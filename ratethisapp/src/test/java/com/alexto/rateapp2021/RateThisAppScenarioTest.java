@@ -0,0 +1,351 @@
+package com.alexto.rateapp2021;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Scenario test for the rate dialog criteria.
+ * Drives launch / later / yes / no sequences over simulated days with a fake clock
+ * and compares shouldShowRateDialog() against a reference model.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class RateThisAppScenarioTest {
+
+    private static final String PREF_NAME = "RateThisApp";
+
+    private static final int[] INSTALL_DAYS = {0, 1, 3, 7, 14, 30};
+    private static final int[] LAUNCH_TIMES = {1, 2, 3, 5, 10, 20};
+    private static final int SEQUENCES_PER_CONFIG = 60;
+    private static final int MAX_STEPS = 16;
+    // Simulated install time of the app, registered with the package manager
+    private static final long INSTALL_TIME = TimeUnit.DAYS.toMillis(18000);
+
+    private Context mContext;
+    // Context whose package is unknown to the package manager, so the install date comes from the clock
+    private Context mUnknownPackageContext;
+    private FakeClock mClock;
+
+    @Before
+    public void setUp() throws PackageManager.NameNotFoundException {
+        mContext = ApplicationProvider.getApplicationContext();
+        mUnknownPackageContext = new ContextWrapper(mContext) {
+            @Override
+            public String getPackageName() {
+                return "com.alexto.rateapp2021.unknown";
+            }
+        };
+        PackageManager packageManager = mContext.getPackageManager();
+        PackageInfo pkgInfo = packageManager.getPackageInfo(mContext.getPackageName(), 0);
+        pkgInfo.firstInstallTime = INSTALL_TIME;
+        shadowOf(packageManager).installPackage(pkgInfo);
+        mClock = new FakeClock();
+        RateThisApp.setClock(mClock);
+    }
+
+    @After
+    public void tearDown() {
+        RateThisApp.setClock(null);
+        RateThisApp.init(new RateThisApp.Config());
+    }
+
+    @Test
+    public void launchesOnly_ShowsAtLaunchCriteria() {
+        run(new Scenario(30, 3, new Step[]{
+                Step.launch(false), Step.launch(false), Step.launch(true), Step.launch(true)}));
+    }
+
+    @Test
+    public void daysElapsed_ShowsAtInstallCriteria() {
+        run(new Scenario(7, 100, new Step[]{
+                Step.launch(false), Step.days(6), Step.launch(false), Step.days(1), Step.launch(true)}));
+    }
+
+    @Test
+    public void later_RestartsBothCriteria() {
+        run(new Scenario(7, 3, new Step[]{
+                Step.launch(false), Step.launch(false), Step.launch(true), Step.later(false),
+                Step.launch(false), Step.days(6), Step.launch(false), Step.days(1), Step.launch(true)}));
+    }
+
+    @Test
+    public void later_PostLaterWindow() {
+        // No day criteria: due again right after "Later"
+        run(new Scenario(0, 5, new Step[]{
+                Step.launch(true), Step.later(true), Step.days(1, true), Step.launch(true)}));
+        // Day criteria restarts from "Later", even before the next launch
+        run(new Scenario(3, 5, new Step[]{
+                Step.launch(false), Step.days(3, true), Step.later(false), Step.days(2, false),
+                Step.launch(false), Step.days(1, true), Step.launch(true)}));
+        // Launch criteria restarts from "Later"
+        run(new Scenario(30, 2, new Step[]{
+                Step.launch(false), Step.launch(true), Step.later(false), Step.launch(false),
+                Step.days(29, false), Step.launch(true)}));
+    }
+
+    @Test
+    public void unknownPackage_InstallDateFromClock() {
+        // After "Later" the install date is stored again from the clock, so the day criteria restarts too
+        run(new Scenario(7, 100, new Step[]{
+                Step.launch(false), Step.later(false), Step.days(7), Step.launch(false),
+                Step.days(6), Step.launch(false), Step.days(1), Step.launch(true)}), mUnknownPackageContext);
+    }
+
+    @Test
+    public void yesOrNo_NeverShowsAgain() {
+        run(new Scenario(1, 1, new Step[]{
+                Step.launch(true), Step.yes(), Step.days(365), Step.launch(false)}));
+        run(new Scenario(1, 1, new Step[]{
+                Step.launch(true), Step.no(), Step.days(365), Step.launch(false)}));
+    }
+
+    @Test
+    public void generatedScenarios_MatchModel() {
+        Random random = new Random(26L);
+        int steps = 0;
+        int checked = 0;
+        for (int installDays : INSTALL_DAYS) {
+            for (int launchTimes : LAUNCH_TIMES) {
+                for (int i = 0; i < SEQUENCES_PER_CONFIG; i++) {
+                    Scenario scenario = new Scenario(installDays, launchTimes, randomSteps(random));
+                    steps += scenario.steps.length;
+                    checked += run(scenario);
+                }
+            }
+        }
+        // Every step of every scenario has to be checked, including "Later" and time travel
+        Assert.assertEquals(steps, checked);
+    }
+
+    private int run(Scenario scenario) {
+        return run(scenario, mContext);
+    }
+
+    /**
+     * Run a scenario from a clean install and check every step against the model.
+     * @return number of checked steps
+     */
+    private int run(Scenario scenario, Context context) {
+        boolean installTimeFromPackage = context == mContext;
+        context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+        RateThisApp.init(new RateThisApp.Config(scenario.installDays, scenario.launchTimes));
+        mClock.now = INSTALL_TIME;
+        Model model = new Model(scenario, installTimeFromPackage);
+
+        int checked = 0;
+        for (int i = 0; i < scenario.steps.length; i++) {
+            Step step = scenario.steps[i];
+            switch (step.action) {
+                case Step.LAUNCH:
+                    RateThisApp.onCreate(context);
+                    model.launch();
+                    break;
+                case Step.DAYS:
+                    mClock.now += TimeUnit.DAYS.toMillis(step.days);
+                    break;
+                case Step.LATER:
+                    RateThisApp.askLater(context);
+                    model.later();
+                    break;
+                case Step.YES:
+                case Step.NO:
+                    RateThisApp.setOptOut(context, true);
+                    model.optOut = true;
+                    break;
+            }
+            boolean expected = model.shouldShow();
+            String message = scenario + (installTimeFromPackage ? "" : " (unknown package)") + " at step " + i;
+            if (step.expected != null) {
+                Assert.assertEquals(message, step.expected, expected);
+            }
+            Assert.assertEquals(message, expected, RateThisApp.shouldShowRateDialog());
+            checked++;
+        }
+        return checked;
+    }
+
+    private static Step[] randomSteps(Random random) {
+        int length = 1 + random.nextInt(MAX_STEPS);
+        List<Step> steps = new ArrayList<>(length + 1);
+        // Every app run starts with onCreate()
+        steps.add(Step.launch(null));
+        for (int i = 0; i < length; i++) {
+            int r = random.nextInt(100);
+            if (r < 50) {
+                steps.add(Step.launch(null));
+            } else if (r < 80) {
+                steps.add(Step.days(random.nextInt(10)));
+            } else if (r < 94) {
+                steps.add(Step.later(null));
+            } else if (r < 97) {
+                steps.add(Step.yes());
+            } else {
+                steps.add(Step.no());
+            }
+        }
+        return steps.toArray(new Step[0]);
+    }
+
+    /**
+     * Reference model of the intended rules: the dialog is due once the app was launched
+     * launchTimes times since the last "Later", or installDays have passed since the later of
+     * the install date and the last "Later". "Yes" and "No" stop it for good.
+     */
+    private class Model {
+        private final Scenario scenario;
+        private final boolean installTimeFromPackage;
+        private int launchesSinceLater = 0;
+        private boolean optOut = false;
+        // Install date as recorded by the library; forgotten on "Later" until the next launch
+        private Long installDate = null;
+        private Long laterDate = null;
+
+        Model(Scenario scenario, boolean installTimeFromPackage) {
+            this.scenario = scenario;
+            this.installTimeFromPackage = installTimeFromPackage;
+        }
+
+        void launch() {
+            if (installDate == null) {
+                installDate = installTimeFromPackage ? INSTALL_TIME : mClock.now;
+            }
+            launchesSinceLater++;
+        }
+
+        void later() {
+            launchesSinceLater = 0;
+            installDate = null;
+            laterDate = mClock.now;
+        }
+
+        boolean shouldShow() {
+            if (optOut) {
+                return false;
+            }
+            if (launchesSinceLater >= scenario.launchTimes) {
+                return true;
+            }
+            long since;
+            if (installDate == null) {
+                since = laterDate;
+            } else if (laterDate == null) {
+                since = installDate;
+            } else {
+                since = Math.max(installDate, laterDate);
+            }
+            return mClock.now - since >= TimeUnit.DAYS.toMillis(scenario.installDays);
+        }
+    }
+
+    private static class Scenario {
+        final int installDays;
+        final int launchTimes;
+        final Step[] steps;
+
+        Scenario(int installDays, int launchTimes, Step[] steps) {
+            this.installDays = installDays;
+            this.launchTimes = launchTimes;
+            this.steps = steps;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Config(").append(installDays).append(", ").append(launchTimes).append(") [");
+            for (int i = 0; i < steps.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(steps[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private static class Step {
+        static final int LAUNCH = 0;
+        static final int DAYS = 1;
+        static final int LATER = 2;
+        static final int YES = 3;
+        static final int NO = 4;
+
+        final int action;
+        final int days;
+        // Expected result of shouldShowRateDialog() after this step, or null to rely on the model only
+        final Boolean expected;
+
+        private Step(int action, int days, Boolean expected) {
+            this.action = action;
+            this.days = days;
+            this.expected = expected;
+        }
+
+        static Step launch(Boolean expected) {
+            return new Step(LAUNCH, 0, expected);
+        }
+
+        static Step days(int days) {
+            return days(days, null);
+        }
+
+        static Step days(int days, Boolean expected) {
+            return new Step(DAYS, days, expected);
+        }
+
+        static Step later(Boolean expected) {
+            return new Step(LATER, 0, expected);
+        }
+
+        static Step yes() {
+            return new Step(YES, 0, false);
+        }
+
+        static Step no() {
+            return new Step(NO, 0, false);
+        }
+
+        @Override
+        public String toString() {
+            switch (action) {
+                case LAUNCH:
+                    return "launch";
+                case DAYS:
+                    return "+" + days + "d";
+                case LATER:
+                    return "later";
+                case YES:
+                    return "yes";
+                default:
+                    return "no";
+            }
+        }
+    }
+
+    private static class FakeClock implements RateThisApp.Clock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+}
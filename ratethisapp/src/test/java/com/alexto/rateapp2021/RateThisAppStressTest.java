@@ -0,0 +1,369 @@
+package com.alexto.rateapp2021;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.android.play.core.review.ReviewInfo;
+import com.google.android.play.core.review.ReviewManager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAlertDialog;
+import org.robolectric.shadows.ShadowDialog;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Stress test for RateThisApp's shared state.
+ * Hammers onCreate / later / opt out from several threads and checks the invariants.
+ * The dialog is confined to the main thread: show requests, including the fallback of a failed
+ * review flow, are posted to the main looper from the workers while other workers change the state.
+ * Throughput of each run is written to build/reports/stress; it is not asserted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class RateThisAppStressTest {
+
+    private static final String PREF_NAME = "RateThisApp";
+    private static final String KEY_OPT_OUT = "rta_opt_out";
+
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 2000;
+    private static final int ROUNDS = 200;
+    private static final int ROUND_ITERATIONS = 50;
+    private static final int DIALOG_CYCLES = 100;
+    private static final int SHOW_REQUESTS = 10;
+    private static final long TIMEOUT_SECONDS = 60;
+    private static final File REPORT = new File("build/reports/stress/RateThisAppStressTest.csv");
+
+    // Review manager whose review flow always fails, so RateThisApp falls back to its own dialog
+    private static final RateThisApp.ReviewManagerProvider UNAVAILABLE_REVIEW = context -> new ReviewManager() {
+        @Override
+        public Task<ReviewInfo> requestReviewFlow() {
+            return Tasks.forException(new IllegalStateException("Play Store unavailable"));
+        }
+
+        @Override
+        public Task<Void> launchReviewFlow(Activity activity, ReviewInfo reviewInfo) {
+            return Tasks.forException(new IllegalStateException("Play Store unavailable"));
+        }
+    };
+
+    private Context mContext;
+    private ExecutorService mExecutor;
+
+    @BeforeClass
+    public static void clearReport() throws IOException {
+        if (REPORT.exists() && !REPORT.delete()) {
+            throw new IOException("Cannot delete " + REPORT);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        prefs().edit().clear().commit();
+        RateThisApp.init(new RateThisApp.Config());
+        RateThisApp.setOptOut(mContext, false);
+        RateThisApp.setReviewManagerProvider(UNAVAILABLE_REVIEW);
+        // State workers and show request posters may run at the same time
+        mExecutor = Executors.newFixedThreadPool(2 * THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        for (Dialog dialog : ShadowDialog.getShownDialogs()) {
+            dialog.dismiss();
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+        // RateThisApp's static state outlives this test class in the same sandbox
+        RateThisApp.init(new RateThisApp.Config());
+        RateThisApp.setOptOut(mContext, false);
+        RateThisApp.setReviewManagerProvider(null);
+        prefs().edit().clear().commit();
+    }
+
+    @Test
+    public void concurrentOnCreate_NoLostLaunchIncrements() throws Exception {
+        long elapsed = runConcurrently(thread -> {
+            for (int i = 0; i < ITERATIONS; i++) {
+                RateThisApp.onCreate(mContext);
+            }
+        });
+        report("onCreate", THREADS * ITERATIONS, elapsed);
+
+        Assert.assertEquals(THREADS * ITERATIONS, RateThisApp.getLaunchCount(mContext));
+    }
+
+    @Test
+    public void concurrentOnCreateWithLaterAndOptOut_NoLostLaunchIncrements() throws Exception {
+        final AtomicInteger firstHalfLaunches = new AtomicInteger();
+        final AtomicInteger secondHalfLaunches = new AtomicInteger();
+        final AtomicInteger firstHalfCount = new AtomicInteger();
+        // Runs while all threads wait, so the count is taken with no operation in flight
+        final CyclicBarrier laterDone = new CyclicBarrier(THREADS,
+                () -> firstHalfCount.set(RateThisApp.getLaunchCount(mContext)));
+
+        long elapsed = runConcurrently(thread -> {
+            // First half: launches interleaved with "Later" and "No"
+            for (int i = 0; i < ITERATIONS; i++) {
+                switch ((i + thread) % 8) {
+                    case 0:
+                        RateThisApp.askLater(mContext);
+                        break;
+                    case 1:
+                        RateThisApp.setOptOut(mContext, true);
+                        break;
+                    default:
+                        RateThisApp.onCreate(mContext);
+                        firstHalfLaunches.incrementAndGet();
+                        break;
+                }
+            }
+            laterDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            // Second half: no more "Later", so every launch from here on must be counted
+            for (int i = 0; i < ITERATIONS; i++) {
+                if ((i + thread) % 8 == 1) {
+                    RateThisApp.setOptOut(mContext, true);
+                } else {
+                    RateThisApp.onCreate(mContext);
+                    secondHalfLaunches.incrementAndGet();
+                }
+            }
+        });
+        report("onCreate/later/optOut", 2 * THREADS * ITERATIONS, elapsed);
+
+        Assert.assertTrue("launch count " + firstHalfCount.get() + " > " + firstHalfLaunches.get(),
+                firstHalfCount.get() <= firstHalfLaunches.get());
+        Assert.assertEquals(firstHalfCount.get() + secondHalfLaunches.get(), RateThisApp.getLaunchCount(mContext));
+        Assert.assertTrue(prefs().getBoolean(KEY_OPT_OUT, false));
+        Assert.assertFalse(RateThisApp.shouldShowRateDialog());
+    }
+
+    @Test
+    public void concurrentLaterAndOptOut_OptOutNeverReverts() throws Exception {
+        // With Config(0, 1) the dialog is always due unless the user opted out
+        RateThisApp.init(new RateThisApp.Config(0, 1));
+        Random random = new Random(27L);
+        long elapsed = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            RateThisApp.setOptOut(mContext, false);
+            final int optOutThread = round % THREADS;
+            final int optOutIteration = random.nextInt(ROUND_ITERATIONS);
+            final AtomicBoolean optedOut = new AtomicBoolean();
+            final AtomicInteger violations = new AtomicInteger();
+
+            elapsed += runConcurrently(thread -> {
+                for (int i = 0; i < ROUND_ITERATIONS; i++) {
+                    boolean optedOutBefore = optedOut.get();
+                    if (thread == optOutThread && i == optOutIteration) {
+                        // "Yes" / "No" pressed on the dialog
+                        RateThisApp.setOptOut(mContext, true);
+                        optedOut.set(true);
+                        optedOutBefore = true;
+                    } else if ((i + thread) % 4 == 0) {
+                        // "Later" pressed or the dialog canceled
+                        RateThisApp.askLater(mContext);
+                    } else {
+                        RateThisApp.onCreate(mContext);
+                    }
+                    if (optedOutBefore && RateThisApp.shouldShowRateDialog()) {
+                        violations.incrementAndGet();
+                    }
+                }
+            });
+
+            Assert.assertEquals("round " + round, 0, violations.get());
+            Assert.assertTrue("round " + round, prefs().getBoolean(KEY_OPT_OUT, false));
+            RateThisApp.onCreate(mContext);
+            Assert.assertFalse("round " + round, RateThisApp.shouldShowRateDialog());
+        }
+        report("onCreate/later/optOut rounds", ROUNDS * THREADS * ROUND_ITERATIONS, elapsed);
+    }
+
+    @Test
+    public void showOffMainThread_Fails() throws Exception {
+        Future<?> future = mExecutor.submit(() -> RateThisApp.showRateDialog(mContext));
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.fail("showRateDialog() off the main thread must fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(0, showingDialogs());
+    }
+
+    @Test
+    public void postedShowRequestsWhileStateChanges_AtMostOneDialogAndOptOutKept() throws Exception {
+        RateThisApp.init(new RateThisApp.Config(0, 1));
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(THREADS);
+        List<Future<Void>> stateWorkers = new ArrayList<>(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            stateWorkers.add(mExecutor.submit(() -> {
+                started.countDown();
+                for (int i = 0; !stop.get(); i++) {
+                    if ((i + thread) % 4 == 0) {
+                        RateThisApp.askLater(mContext);
+                    } else {
+                        RateThisApp.onCreate(mContext);
+                    }
+                }
+                return null;
+            }));
+        }
+        started.await();
+
+        long elapsed = 0;
+        try {
+            for (int cycle = 0; cycle < DIALOG_CYCLES; cycle++) {
+                // Show requests from all threads at once; half of them go through the failing review
+                // flow, whose completion callback posts the fallback dialog to the main looper later
+                elapsed += runConcurrently(thread -> {
+                    for (int i = 0; i < SHOW_REQUESTS; i++) {
+                        if ((i + thread) % 2 == 0) {
+                            mainHandler.post(() -> RateThisApp.showRateAppInReviewDialog(mContext));
+                        } else {
+                            mainHandler.post(() -> RateThisApp.showRateDialog(mContext));
+                        }
+                    }
+                });
+                long begin = System.nanoTime();
+                shadowOf(Looper.getMainLooper()).idle();
+                elapsed += System.nanoTime() - begin;
+                Assert.assertEquals("cycle " + cycle, 1, showingDialogs());
+
+                AlertDialog dialog = ShadowAlertDialog.getLatestAlertDialog();
+                switch (cycle % 3) {
+                    case 0:
+                        dialog.getButton(DialogInterface.BUTTON_NEUTRAL).performClick();
+                        break;
+                    case 1:
+                        dialog.cancel();
+                        break;
+                    default:
+                        dialog.getButton(DialogInterface.BUTTON_NEGATIVE).performClick();
+                        break;
+                }
+                shadowOf(Looper.getMainLooper()).idle();
+                Assert.assertEquals("cycle " + cycle, 0, showingDialogs());
+
+                if (cycle % 3 == 2) {
+                    // "No" must stick while the workers keep launching
+                    for (int i = 0; i < 10; i++) {
+                        Assert.assertFalse("cycle " + cycle, RateThisApp.shouldShowRateDialog());
+                        Thread.yield();
+                    }
+                    Assert.assertTrue("cycle " + cycle, prefs().getBoolean(KEY_OPT_OUT, false));
+                    RateThisApp.setOptOut(mContext, false);
+                }
+            }
+        } finally {
+            stop.set(true);
+        }
+        for (Future<Void> future : stateWorkers) {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        report("posted show requests", DIALOG_CYCLES * THREADS * SHOW_REQUESTS, elapsed);
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Start the worker on all threads at once and wait for them.
+     * @return elapsed time in nanoseconds
+     */
+    private long runConcurrently(final Worker worker) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            futures.add(mExecutor.submit((Callable<Void>) () -> {
+                start.await();
+                worker.run(thread);
+                return null;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<Void> future : futures) {
+            // Rethrows any failure from the worker thread
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Append the throughput to the stress report.
+     */
+    private void report(String name, long ops, long elapsedNanos) throws IOException {
+        double opsPerSecond = ops * 1e9 / elapsedNanos;
+        File dir = REPORT.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        boolean header = !REPORT.exists();
+        try (Writer writer = new FileWriter(REPORT, true)) {
+            if (header) {
+                writer.write("scenario,threads,ops,elapsed_ms,ops_per_second\n");
+            }
+            writer.write(String.format(Locale.ROOT, "%s,%d,%d,%.1f,%.0f\n",
+                    name, THREADS, ops, elapsedNanos / 1e6, opsPerSecond));
+        }
+    }
+
+    private static int showingDialogs() {
+        int count = 0;
+        for (Dialog dialog : ShadowDialog.getShownDialogs()) {
+            if (dialog.isShowing()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private SharedPreferences prefs() {
+        return mContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+}